@@ -0,0 +1,278 @@
+import java.util.Arrays;
+
+/**
+ * Persistent AVL trees of {@code long} keys stored in primitive arrays. A node is an index into the arrays,
+ * a tree version is the index of its root and {@link #EMPTY} is the empty tree. Nodes are only appended
+ * and never changed, so every version stays valid until {@link #compact(int...)} drops the nodes
+ * which none of the given versions can reach.
+ * <p>
+ * A node takes 17 bytes without any object header or boxed key, and the garbage collector traces
+ * four arrays instead of every node. Not thread-safe
+ *
+ * @author Victor Khovanskiy
+ */
+public class AVLArena {
+    public static final int EMPTY = 0;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * Some VMs can not allocate arrays of exactly {@link Integer#MAX_VALUE} elements
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private long[] keys;
+    private int[] left;
+    private int[] right;
+    private byte[] hh;
+    private int size;
+
+    public AVLArena() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AVLArena(int capacity) {
+        assert capacity > 0;
+        allocate(capacity);
+        // node 0 is the empty tree
+        size = 1;
+    }
+
+    /**
+     * The number of allocated nodes, including the unreachable ones
+     */
+    public int size() {
+        return size - 1;
+    }
+
+    public boolean contains(int tree, long m) {
+        while (tree != EMPTY) {
+            long k = keys[tree];
+            if (m == k) {
+                return true;
+            }
+            tree = m < k ? left[tree] : right[tree];
+        }
+        return false;
+    }
+
+    /**
+     * Returns the same version if the key is already in the tree
+     */
+    public int insert(int tree, long m) {
+        if (tree == EMPTY) {
+            return create(m, EMPTY, EMPTY);
+        }
+        long k = keys[tree];
+        int l = left[tree];
+        int r = right[tree];
+        if (m == k) {
+            return tree;
+        } else if (m < k) {
+            int newL = insert(l, m);
+            return newL == l ? tree : balance(k, newL, r);
+        } else {
+            int newR = insert(r, m);
+            return newR == r ? tree : balance(k, l, newR);
+        }
+    }
+
+    /**
+     * Returns the same version if there is no such key in the tree
+     */
+    public int delete(int tree, long m) {
+        if (tree == EMPTY) {
+            return tree;
+        }
+        long k = keys[tree];
+        int l = left[tree];
+        int r = right[tree];
+        if (m == k) {
+            return deleteRoot(tree);
+        } else if (m < k) {
+            int newL = delete(l, m);
+            return newL == l ? tree : balance(k, newL, r);
+        } else {
+            int newR = delete(r, m);
+            return newR == r ? tree : balance(k, l, newR);
+        }
+    }
+
+    public long[] toArray(int tree) {
+        long[] result = new long[count(tree)];
+        int length = collect(tree, result, 0);
+        assert length == result.length;
+        return result;
+    }
+
+    public boolean isBalanced(int tree) {
+        if (tree == EMPTY) {
+            return true;
+        }
+        int factor = bFactor(tree);
+        return factor > -2 && factor < 2
+                && hh[tree] == height(left[tree], right[tree])
+                && isBalanced(left[tree]) && isBalanced(right[tree]);
+    }
+
+    /**
+     * Drops the nodes which are not reachable from the given versions. Shared nodes stay shared.
+     * The arena is not changed if any of the versions is not a node of it
+     *
+     * @return the new indices of the given versions, in the same order
+     */
+    public int[] compact(int... trees) {
+        for (int tree : trees) {
+            if (tree < 0 || tree >= size) {
+                throw new IllegalArgumentException("No such node in the arena: " + tree);
+            }
+        }
+        // at first the moved nodes are only marked, to count them
+        int[] moved = new int[size];
+        int reachable = 0;
+        for (int tree : trees) {
+            reachable += mark(tree, moved);
+        }
+        Arrays.fill(moved, EMPTY);
+        long[] oldKeys = keys;
+        int[] oldLeft = left;
+        int[] oldRight = right;
+        allocate(Math.max(reachable + 1, DEFAULT_CAPACITY));
+        size = 1;
+        int[] result = new int[trees.length];
+        for (int i = 0; i < trees.length; ++i) {
+            result[i] = move(trees[i], moved, oldKeys, oldLeft, oldRight);
+        }
+        return result;
+    }
+
+    private int move(int tree, int[] moved, long[] oldKeys, int[] oldLeft, int[] oldRight) {
+        if (tree == EMPTY) {
+            return EMPTY;
+        }
+        if (moved[tree] == EMPTY) {
+            int l = move(oldLeft[tree], moved, oldKeys, oldLeft, oldRight);
+            int r = move(oldRight[tree], moved, oldKeys, oldLeft, oldRight);
+            moved[tree] = create(oldKeys[tree], l, r);
+        }
+        return moved[tree];
+    }
+
+    private int mark(int tree, int[] marked) {
+        if (tree == EMPTY || marked[tree] != EMPTY) {
+            return 0;
+        }
+        marked[tree] = tree;
+        return mark(left[tree], marked) + 1 + mark(right[tree], marked);
+    }
+
+    /**
+     * Replaces the arrays only when all of them are allocated
+     */
+    private void allocate(int capacity) {
+        long[] newKeys = new long[capacity];
+        int[] newLeft = new int[capacity];
+        int[] newRight = new int[capacity];
+        byte[] newHh = new byte[capacity];
+        keys = newKeys;
+        left = newLeft;
+        right = newRight;
+        hh = newHh;
+    }
+
+    private int count(int tree) {
+        return tree == EMPTY ? 0 : count(left[tree]) + 1 + count(right[tree]);
+    }
+
+    private int collect(int tree, long[] result, int offset) {
+        if (tree == EMPTY) {
+            return offset;
+        }
+        offset = collect(left[tree], result, offset);
+        result[offset++] = keys[tree];
+        return collect(right[tree], result, offset);
+    }
+
+    private int height(int l, int r) {
+        return Math.max(hh[l], hh[r]) + 1;
+    }
+
+    private int bFactor(int tree) {
+        return hh[right[tree]] - hh[left[tree]];
+    }
+
+    private int create(long k, int l, int r) {
+        if (size == keys.length) {
+            if (size == MAX_CAPACITY) {
+                throw new IllegalStateException("Arena is full: " + size + " nodes, compact it");
+            }
+            int capacity = (int) Math.min(2L * keys.length, MAX_CAPACITY);
+            long[] newKeys = Arrays.copyOf(keys, capacity);
+            int[] newLeft = Arrays.copyOf(left, capacity);
+            int[] newRight = Arrays.copyOf(right, capacity);
+            byte[] newHh = Arrays.copyOf(hh, capacity);
+            keys = newKeys;
+            left = newLeft;
+            right = newRight;
+            hh = newHh;
+        }
+        int node = size++;
+        keys[node] = k;
+        left[node] = l;
+        right[node] = r;
+        hh[node] = (byte) height(l, r);
+        return node;
+    }
+
+    /**
+     * Creates the node, rotating it if the heights of the subtrees differ by two
+     */
+    private int balance(long k, int l, int r) {
+        int factor = hh[r] - hh[l];
+        if (factor == 2) {
+            if (bFactor(r) < 0) {
+                r = rotateRight(keys[r], left[r], right[r]);
+            }
+            return rotateLeft(k, l, r);
+        } else if (factor == -2) {
+            if (bFactor(l) > 0) {
+                l = rotateLeft(keys[l], left[l], right[l]);
+            }
+            return rotateRight(k, l, r);
+        }
+        return create(k, l, r);
+    }
+
+    private int rotateRight(long p, int q, int c) {
+        int newP = create(p, right[q], c);
+        return create(keys[q], left[q], newP);
+    }
+
+    private int rotateLeft(long q, int a, int p) {
+        int newQ = create(q, a, left[p]);
+        return create(keys[p], newQ, right[p]);
+    }
+
+    private int deleteRoot(int tree) {
+        int l = left[tree];
+        int r = right[tree];
+        if (l == EMPTY) {
+            return r;
+        }
+        if (r == EMPTY) {
+            return l;
+        }
+        int min = r;
+        while (left[min] != EMPTY) {
+            min = left[min];
+        }
+        return balance(keys[min], l, deleteMin(r));
+    }
+
+    private int deleteMin(int tree) {
+        int l = left[tree];
+        if (l == EMPTY) {
+            return right[tree];
+        }
+        return balance(keys[tree], deleteMin(l), right[tree]);
+    }
+}
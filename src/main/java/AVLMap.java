@@ -0,0 +1,360 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiFunction;
+
+/**
+ * Persistent sorted map on top of {@link AVLTree}. Every update returns a new version and never changes
+ * the current one; an update which leaves the map unchanged returns the very same instance.
+ * <p>
+ * A version is immutable but its nodes have no final fields, see {@link AVLTree}, so it must be passed
+ * to other threads through a safe publication, like {@link AVLStore} does
+ *
+ * @author Victor Khovanskiy
+ */
+public class AVLMap<K, V> {
+    private final Comparator<? super K> comparator;
+    private final AVLTree<K> root;
+
+    private AVLMap(Comparator<? super K> comparator, AVLTree<K> root) {
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    public static <K extends Comparable<? super K>, V> AVLMap<K, V> create() {
+        return create(Comparator.naturalOrder());
+    }
+
+    public static <K, V> AVLMap<K, V> create(Comparator<? super K> comparator) {
+        assert comparator != null;
+        return new AVLMap<>(comparator, AVLTree.create());
+    }
+
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    public int size() {
+        return AVLTree.size(root);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return AVLTree.lookup(root, key, comparator).isPresent();
+    }
+
+    public Optional<V> get(K key) {
+        return AVLTree.lookup(root, key, comparator).map(this::value);
+    }
+
+    public V getOrDefault(K key, V defaultValue) {
+        return get(key).orElse(defaultValue);
+    }
+
+    public AVLMap<K, V> put(K key, V value) {
+        assert key != null;
+        assert value != null;
+        AVLTree<K> newRoot = AVLTree.put(root, key, value, comparator);
+        if (newRoot == root) {
+            return this;
+        }
+        return new AVLMap<>(comparator, newRoot);
+    }
+
+    public AVLMap<K, V> remove(K key) {
+        AVLTree<K> newRoot = AVLTree.delete(root, key, comparator);
+        if (newRoot == root) {
+            return this;
+        }
+        return new AVLMap<>(comparator, newRoot);
+    }
+
+    /**
+     * Binds the key to the result of the function, or removes the key if the result is {@code null}
+     */
+    public AVLMap<K, V> compute(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        V oldValue = get(key).orElse(null);
+        V newValue = function.apply(key, oldValue);
+        if (newValue == null) {
+            return oldValue == null ? this : remove(key);
+        }
+        return put(key, newValue);
+    }
+
+    /**
+     * Binds the key to the value if it is absent, otherwise to the result of the function
+     * applied to the old and the given values. The key is removed if the result is {@code null}
+     */
+    public AVLMap<K, V> merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> function) {
+        assert value != null;
+        Optional<V> oldValue = get(key);
+        if (!oldValue.isPresent()) {
+            return put(key, value);
+        }
+        V newValue = function.apply(oldValue.get(), value);
+        return newValue == null ? remove(key) : put(key, newValue);
+    }
+
+    public Optional<Map.Entry<K, V>> firstEntry() {
+        return AVLTree.first(root).map(this::entry);
+    }
+
+    public Optional<Map.Entry<K, V>> lastEntry() {
+        return AVLTree.last(root).map(this::entry);
+    }
+
+    public Optional<Map.Entry<K, V>> floorEntry(K key) {
+        return AVLTree.floor(root, key, true, comparator).map(this::entry);
+    }
+
+    public Optional<Map.Entry<K, V>> lowerEntry(K key) {
+        return AVLTree.floor(root, key, false, comparator).map(this::entry);
+    }
+
+    public Optional<Map.Entry<K, V>> ceilingEntry(K key) {
+        return AVLTree.ceiling(root, key, true, comparator).map(this::entry);
+    }
+
+    public Optional<Map.Entry<K, V>> higherEntry(K key) {
+        return AVLTree.ceiling(root, key, false, comparator).map(this::entry);
+    }
+
+    public Optional<K> firstKey() {
+        return firstEntry().map(Map.Entry::getKey);
+    }
+
+    public Optional<K> lastKey() {
+        return lastEntry().map(Map.Entry::getKey);
+    }
+
+    public Optional<K> floorKey(K key) {
+        return floorEntry(key).map(Map.Entry::getKey);
+    }
+
+    public Optional<K> lowerKey(K key) {
+        return lowerEntry(key).map(Map.Entry::getKey);
+    }
+
+    public Optional<K> ceilingKey(K key) {
+        return ceilingEntry(key).map(Map.Entry::getKey);
+    }
+
+    public Optional<K> higherKey(K key) {
+        return higherEntry(key).map(Map.Entry::getKey);
+    }
+
+    /**
+     * Entries in ascending order of the keys
+     */
+    public List<Map.Entry<K, V>> entries() {
+        List<Map.Entry<K, V>> list = new ArrayList<>(size());
+        for (AVLTree.AVLNode<K> node : AVLTree.toNodeList(root)) {
+            list.add(entry(node));
+        }
+        return list;
+    }
+
+    public List<K> keys() {
+        return AVLTree.toList(root);
+    }
+
+    /**
+     * Changes from the first version to the second one in ascending order of the keys.
+     * Subtrees shared by the versions are not visited
+     */
+    public static <K, V> List<Change<K, V>> diff(AVLMap<K, V> a, AVLMap<K, V> b) {
+        List<Change<K, V>> list = new ArrayList<>();
+        AVLTree.diff(a.root, b.root, a.comparator, (x, y) -> list.add(new Change<>(
+                x == null ? y.key : x.key,
+                x == null ? Optional.empty() : Optional.of(a.value(x)),
+                y == null ? Optional.empty() : Optional.of(b.value(y)))));
+        return list;
+    }
+
+    /**
+     * Batch-mutable copy of this version, see {@link AVLTransient}
+     */
+    public Transient<K, V> asTransient() {
+        return new Transient<>(comparator, AVLTransient.of(root, comparator));
+    }
+
+    /**
+     * The underlying tree of this version
+     */
+    public AVLTree<K> tree() {
+        return root;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(AVLTree.AVLNode<K> node) {
+        return (V) node.value;
+    }
+
+    private Map.Entry<K, V> entry(AVLTree.AVLNode<K> node) {
+        return new AbstractMap.SimpleImmutableEntry<>(node.key, value(node));
+    }
+
+    /**
+     * Maps are equal if they have equal comparators and equal entries, whatever the shapes of their trees are.
+     * The trees are walked with the common comparator, and shared subtrees are not compared
+     */
+    @SuppressWarnings("unchecked")
+    public boolean equals(Object o) {
+        if (o instanceof AVLMap) {
+            AVLMap<K, V> another = (AVLMap<K, V>) o;
+            if (!this.comparator.equals(another.comparator)) {
+                return false;
+            }
+            return this.root == another.root
+                    || this.size() == another.size()
+                    && this.hashCode() == another.hashCode()
+                    && diff(this, another).isEmpty();
+        }
+        return false;
+    }
+
+    public int hashCode() {
+        return AVLTree.contentHash(root);
+    }
+
+    public String toString() {
+        return "AVLMap(size=" + size() + ")";
+    }
+
+    public static class Change<K, V> {
+        private final K key;
+        private final Optional<V> oldValue;
+        private final Optional<V> newValue;
+
+        Change(K key, Optional<V> oldValue, Optional<V> newValue) {
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public K key() {
+            return key;
+        }
+
+        /**
+         * Empty if the key is added
+         */
+        public Optional<V> oldValue() {
+            return oldValue;
+        }
+
+        /**
+         * Empty if the key is removed
+         */
+        public Optional<V> newValue() {
+            return newValue;
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof Change) {
+                Change another = (Change) o;
+                return this.key.equals(another.key) && this.oldValue.equals(another.oldValue) && this.newValue.equals(another.newValue);
+            }
+            return false;
+        }
+
+        public int hashCode() {
+            final int PRIME = 59;
+            int result = 1;
+            result = result * PRIME + key.hashCode();
+            result = result * PRIME + oldValue.hashCode();
+            result = result * PRIME + newValue.hashCode();
+            return result;
+        }
+
+        public String toString() {
+            return "Change(key=" + this.key + ", oldValue=" + this.oldValue + ", newValue=" + this.newValue + ")";
+        }
+    }
+
+    /**
+     * Batch-mutable map, not thread-safe. See {@link AVLTransient}
+     */
+    public static class Transient<K, V> {
+        private final Comparator<? super K> comparator;
+        private final AVLTransient<K> tree;
+        /**
+         * Only the owner can freeze the transient, a view only edits it until it is closed
+         */
+        private final boolean owner;
+        private boolean closed;
+
+        private Transient(Comparator<? super K> comparator, AVLTransient<K> tree) {
+            this(comparator, tree, true);
+        }
+
+        private Transient(Comparator<? super K> comparator, AVLTransient<K> tree, boolean owner) {
+            this.comparator = comparator;
+            this.tree = tree;
+            this.owner = owner;
+        }
+
+        public int size() {
+            ensureOpen();
+            return tree.size();
+        }
+
+        @SuppressWarnings("unchecked")
+        public Optional<V> get(K key) {
+            ensureOpen();
+            return tree.lookup(key).map(node -> (V) node.value);
+        }
+
+        public Transient<K, V> put(K key, V value) {
+            assert key != null;
+            assert value != null;
+            ensureOpen();
+            tree.put(key, value);
+            return this;
+        }
+
+        public Transient<K, V> remove(K key) {
+            ensureOpen();
+            tree.delete(key);
+            return this;
+        }
+
+        /**
+         * Freezes the transient and returns the resulting persistent map
+         *
+         * @throws IllegalStateException if this is a view
+         */
+        public AVLMap<K, V> persistent() {
+            if (!owner) {
+                throw new IllegalStateException("View can not freeze the transient");
+            }
+            return new AVLMap<>(comparator, tree.persistent());
+        }
+
+        /**
+         * Edits the same transient, but can not freeze it
+         */
+        Transient<K, V> view() {
+            return new Transient<>(comparator, tree, false);
+        }
+
+        /**
+         * Makes further use of the view fail, the transient itself is not changed
+         */
+        void close() {
+            closed = true;
+        }
+
+        private void ensureOpen() {
+            if (closed) {
+                throw new IllegalStateException("View is used after it is closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent store of numbered {@link AVLMap} versions. Reads are wait-free: a snapshot is a single volatile read
+ * and is never changed afterwards. Writes publish a new version with compare-and-set.
+ * <p>
+ * Writers are combined: every operation is queued, and the thread which takes the combiner role applies
+ * all queued operations to one {@link AVLMap.Transient} and publishes them as a single version,
+ * while the others wait for their operations to be done. Operations must be free of side effects,
+ * since they may be applied again if the version they were applied to is outdated.
+ * An operation gets a view of the transient which can not freeze it and can not be used after the operation returns
+ *
+ * @author Victor Khovanskiy
+ */
+public class AVLStore<K, V> {
+    private static final int MAX_BATCH = 1024;
+
+    private final AtomicReference<Version<K, V>> current;
+    private final int retained;
+    private final Queue<Request<K, V>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean combining = new AtomicBoolean();
+
+    /**
+     * @param initial  the map published as version 0
+     * @param retained how many of the latest versions are available by number, at least 1
+     */
+    public AVLStore(AVLMap<K, V> initial, int retained) {
+        assert initial != null;
+        assert retained >= 1;
+        this.retained = retained;
+        this.current = new AtomicReference<>(new Version<>(0, initial, AVLMap.<Long, AVLMap<K, V>>create().put(0L, initial)));
+    }
+
+    public Version<K, V> current() {
+        return current.get();
+    }
+
+    public AVLMap<K, V> snapshot() {
+        return current.get().map;
+    }
+
+    /**
+     * The version by its number, if it is still retained
+     */
+    public Optional<AVLMap<K, V>> snapshot(long number) {
+        return current.get().history.get(number);
+    }
+
+    /**
+     * Publishes the updated map if the current version is still the expected one
+     */
+    public boolean compareAndSet(AVLMap<K, V> expected, AVLMap<K, V> updated) {
+        Version<K, V> base = current.get();
+        if (base.map != expected) {
+            return false;
+        }
+        return base.map == updated || publish(base, updated);
+    }
+
+    /**
+     * @return the number of the version where the change is visible
+     */
+    public long put(K key, V value) {
+        return update(map -> map.put(key, value));
+    }
+
+    /**
+     * @return the number of the version where the change is visible
+     */
+    public long remove(K key) {
+        return update(map -> map.remove(key));
+    }
+
+    /**
+     * Applies the operation atomically. If the operation throws, none of its changes are published
+     * and the exception is rethrown to the caller
+     *
+     * @return the number of the version where the change is visible
+     */
+    public long update(Consumer<AVLMap.Transient<K, V>> operation) {
+        Request<K, V> request = new Request<>(operation);
+        queue.add(request);
+        while (!request.done) {
+            if (combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } finally {
+                    combining.set(false);
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+        if (request.failure != null) {
+            AVLStore.<RuntimeException>rethrow(request.failure);
+        }
+        return request.version;
+    }
+
+    /**
+     * The number of operations waiting for a combiner. For tests
+     */
+    int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Rethrows the failure as is, checked exceptions may come from operations which throw them sneakily
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> void rethrow(Throwable failure) throws E {
+        throw (E) failure;
+    }
+
+    private void combine() {
+        List<Request<K, V>> batch = new ArrayList<>();
+        Request<K, V> next;
+        while (batch.size() < MAX_BATCH && (next = queue.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            combine(batch);
+        } catch (Throwable e) {
+            // nothing is published yet, the failure is reported to every caller of the batch
+            for (Request<K, V> request : batch) {
+                if (request.failure == null) {
+                    request.failure = e;
+                }
+            }
+        } finally {
+            // nobody else knows about the drained requests, so they must not be left waiting
+            for (Request<K, V> request : batch) {
+                request.done = true;
+            }
+        }
+    }
+
+    private void combine(List<Request<K, V>> batch) {
+        while (true) {
+            Version<K, V> base = current.get();
+            AVLMap.Transient<K, V> map = base.map.asTransient();
+            if (!apply(batch, map)) {
+                // the failed operation might have left changes in the transient, start from scratch without it
+                continue;
+            }
+            AVLMap<K, V> updated = map.persistent();
+            long number = base.number;
+            if (updated.tree() != base.map.tree()) {
+                if (!publish(base, updated)) {
+                    continue;
+                }
+                number = base.number + 1;
+            }
+            for (Request<K, V> request : batch) {
+                request.version = number;
+            }
+            return;
+        }
+    }
+
+    private boolean apply(List<Request<K, V>> batch, AVLMap.Transient<K, V> map) {
+        for (Request<K, V> request : batch) {
+            if (request.failure != null) {
+                continue;
+            }
+            AVLMap.Transient<K, V> view = map.view();
+            try {
+                request.operation.accept(view);
+            } catch (Throwable e) {
+                request.failure = e;
+                return false;
+            } finally {
+                view.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The retained versions are published together with the new one, so they can not be seen out of date
+     */
+    private boolean publish(Version<K, V> base, AVLMap<K, V> updated) {
+        long number = base.number + 1;
+        AVLMap<Long, AVLMap<K, V>> history = base.history.put(number, updated).remove(number - retained);
+        return current.compareAndSet(base, new Version<>(number, updated, history));
+    }
+
+    public static class Version<K, V> {
+        private final long number;
+        private final AVLMap<K, V> map;
+        /**
+         * The retained versions by their numbers, including this one
+         */
+        private final AVLMap<Long, AVLMap<K, V>> history;
+
+        private Version(long number, AVLMap<K, V> map, AVLMap<Long, AVLMap<K, V>> history) {
+            this.number = number;
+            this.map = map;
+            this.history = history;
+        }
+
+        public long number() {
+            return number;
+        }
+
+        public AVLMap<K, V> map() {
+            return map;
+        }
+
+        public String toString() {
+            return "Version(number=" + this.number + ", size=" + this.map.size() + ")";
+        }
+    }
+
+    private static class Request<K, V> {
+        private final Consumer<AVLMap.Transient<K, V>> operation;
+        private long version;
+        private Throwable failure;
+        private volatile boolean done;
+
+        private Request(Consumer<AVLMap.Transient<K, V>> operation) {
+            this.operation = operation;
+        }
+    }
+}
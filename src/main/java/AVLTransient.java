@@ -0,0 +1,256 @@
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Batch-mutable view of a persistent {@link AVLTree}. Nodes created by the transient are owned by its edit token
+ * and are changed in place, nodes shared with persistent trees are copied once before the first change.
+ * After {@link #persistent()} the transient can not be used anymore, so the nodes it has returned are never changed.
+ * <p>
+ * Not thread-safe: the transient must be confined to one thread
+ *
+ * @author Victor Khovanskiy
+ */
+public class AVLTransient<T> {
+    private final Comparator<? super T> comparator;
+    private AVLTree<T> root;
+    private Object edit = new Object();
+
+    private AVLTransient(AVLTree<T> root, Comparator<? super T> comparator) {
+        this.root = root;
+        this.comparator = comparator;
+    }
+
+    public static <T extends Comparable<T>> AVLTransient<T> of(AVLTree<T> tree) {
+        return of(tree, Comparator.naturalOrder());
+    }
+
+    public static <T> AVLTransient<T> of(AVLTree<T> tree, Comparator<? super T> comparator) {
+        assert tree != null;
+        assert comparator != null;
+        return new AVLTransient<>(tree, comparator);
+    }
+
+    public Optional<T> find(T m) {
+        ensureEditable();
+        return AVLTree.find(root, m, comparator);
+    }
+
+    public AVLTransient<T> insert(T m) {
+        ensureEditable();
+        root = insert(root, m);
+        return this;
+    }
+
+    public AVLTransient<T> delete(T m) {
+        ensureEditable();
+        root = delete(root, m);
+        return this;
+    }
+
+    AVLTransient<T> put(T m, Object value) {
+        ensureEditable();
+        root = put(root, m, value);
+        return this;
+    }
+
+    public int size() {
+        ensureEditable();
+        return AVLTree.size(root);
+    }
+
+    Optional<AVLTree.AVLNode<T>> lookup(T m) {
+        ensureEditable();
+        return AVLTree.lookup(root, m, comparator);
+    }
+
+    /**
+     * The current root, without freezing the transient. For tests
+     */
+    AVLTree<T> root() {
+        ensureEditable();
+        return root;
+    }
+
+    /**
+     * Freezes the transient and returns the resulting persistent tree
+     */
+    public AVLTree<T> persistent() {
+        ensureEditable();
+        edit = null;
+        return root;
+    }
+
+    private void ensureEditable() {
+        if (edit == null) {
+            throw new IllegalStateException("Transient is used after persistent() call");
+        }
+    }
+
+    /**
+     * Owned child may be changed in place, so the parent has to be rebalanced anyway.
+     * Persistent nodes never refer to owned ones, hence the parent is owned too and is not copied
+     */
+    private boolean unchanged(AVLTree<T> oldChild, AVLTree<T> newChild) {
+        return oldChild == newChild && !(newChild instanceof AVLTree.AVLNode && ((AVLTree.AVLNode<T>) newChild).edit == edit);
+    }
+
+    private AVLTree.AVLNode<T> editable(AVLTree.AVLNode<T> node) {
+        if (node.edit == edit) {
+            return node;
+        }
+        return new AVLTree.AVLNode<>(node.key, node.value, node.hh, node.left, node.right, edit);
+    }
+
+    private AVLTree<T> create(T m, Object value, AVLTree<T> leaf) {
+        return new AVLTree.AVLNode<>(m, value, 1, leaf, leaf, edit);
+    }
+
+    private AVLTree<T> insert(AVLTree<T> tree, T m) {
+        if (!(tree instanceof AVLTree.AVLNode)) {
+            return create(m, null, tree);
+        }
+        AVLTree.AVLNode<T> node = (AVLTree.AVLNode<T>) tree;
+        int cmp = comparator.compare(m, node.key);
+        if (cmp == 0) {
+            if (node.key == m) {
+                return node;
+            }
+            AVLTree.AVLNode<T> result = editable(node);
+            result.key = m;
+            result.recompute();
+            return result;
+        } else if (cmp < 0) {
+            AVLTree<T> newL = insert(node.left, m);
+            return unchanged(node.left, newL) ? node : withLeft(node, newL);
+        } else {
+            AVLTree<T> newR = insert(node.right, m);
+            return unchanged(node.right, newR) ? node : withRight(node, newR);
+        }
+    }
+
+    private AVLTree<T> put(AVLTree<T> tree, T m, Object value) {
+        if (!(tree instanceof AVLTree.AVLNode)) {
+            return create(m, value, tree);
+        }
+        AVLTree.AVLNode<T> node = (AVLTree.AVLNode<T>) tree;
+        int cmp = comparator.compare(m, node.key);
+        if (cmp == 0) {
+            if (Objects.equals(node.value, value)) {
+                return node;
+            }
+            AVLTree.AVLNode<T> result = editable(node);
+            result.value = value;
+            result.recompute();
+            return result;
+        } else if (cmp < 0) {
+            AVLTree<T> newL = put(node.left, m, value);
+            return unchanged(node.left, newL) ? node : withLeft(node, newL);
+        } else {
+            AVLTree<T> newR = put(node.right, m, value);
+            return unchanged(node.right, newR) ? node : withRight(node, newR);
+        }
+    }
+
+    private AVLTree<T> delete(AVLTree<T> tree, T m) {
+        if (!(tree instanceof AVLTree.AVLNode)) {
+            return tree;
+        }
+        AVLTree.AVLNode<T> node = (AVLTree.AVLNode<T>) tree;
+        int cmp = comparator.compare(m, node.key);
+        if (cmp == 0) {
+            return deleteRoot(node);
+        } else if (cmp < 0) {
+            AVLTree<T> newL = delete(node.left, m);
+            return unchanged(node.left, newL) ? node : withLeft(node, newL);
+        } else {
+            AVLTree<T> newR = delete(node.right, m);
+            return unchanged(node.right, newR) ? node : withRight(node, newR);
+        }
+    }
+
+    private AVLTree<T> deleteRoot(AVLTree.AVLNode<T> node) {
+        if (!(node.left instanceof AVLTree.AVLNode)) {
+            return node.right;
+        }
+        if (!(node.right instanceof AVLTree.AVLNode)) {
+            return node.left;
+        }
+        AVLTree.AVLNode<T> min = AVLTree.first(node.right).get();
+        T k = min.key;
+        Object v = min.value;
+        AVLTree<T> newR = deleteMin((AVLTree.AVLNode<T>) node.right);
+        AVLTree.AVLNode<T> result = editable(node);
+        result.key = k;
+        result.value = v;
+        result.right = newR;
+        return balance(result);
+    }
+
+    private AVLTree<T> deleteMin(AVLTree.AVLNode<T> node) {
+        if (!(node.left instanceof AVLTree.AVLNode)) {
+            return node.right;
+        }
+        return withLeft(node, deleteMin((AVLTree.AVLNode<T>) node.left));
+    }
+
+    private AVLTree<T> withLeft(AVLTree.AVLNode<T> node, AVLTree<T> left) {
+        AVLTree.AVLNode<T> result = editable(node);
+        result.left = left;
+        return balance(result);
+    }
+
+    private AVLTree<T> withRight(AVLTree.AVLNode<T> node, AVLTree<T> right) {
+        AVLTree.AVLNode<T> result = editable(node);
+        result.right = right;
+        return balance(result);
+    }
+
+    /**
+     * Balances the owned node in place, rotated children are taken over as well
+     */
+    private AVLTree<T> balance(AVLTree.AVLNode<T> node) {
+        int factor = AVLTree.bFactor(node);
+        if (factor == 2) {
+            AVLTree.AVLNode<T> r = (AVLTree.AVLNode<T>) node.right;
+            if (AVLTree.bFactor(r) < 0) {
+                node.right = rotateRight(editable(r));
+            }
+            return rotateLeft(node);
+        } else if (factor == -2) {
+            AVLTree.AVLNode<T> l = (AVLTree.AVLNode<T>) node.left;
+            if (AVLTree.bFactor(l) > 0) {
+                node.left = rotateLeft(editable(l));
+            }
+            return rotateRight(node);
+        }
+        update(node);
+        return node;
+    }
+
+    private AVLTree.AVLNode<T> rotateRight(AVLTree.AVLNode<T> p) {
+        AVLTree.AVLNode<T> q = editable((AVLTree.AVLNode<T>) p.left);
+        p.left = q.right;
+        update(p);
+        q.right = p;
+        update(q);
+        return q;
+    }
+
+    private AVLTree.AVLNode<T> rotateLeft(AVLTree.AVLNode<T> q) {
+        AVLTree.AVLNode<T> p = editable((AVLTree.AVLNode<T>) q.right);
+        q.right = p.left;
+        update(q);
+        p.left = q;
+        update(p);
+        return p;
+    }
+
+    /**
+     * Recomputes the cached height, size and hash of the owned node after its children have been changed
+     */
+    private void update(AVLTree.AVLNode<T> node) {
+        node.hh = AVLTree.height(node.left, node.right);
+        node.recompute();
+    }
+}
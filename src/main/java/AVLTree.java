@@ -1,11 +1,20 @@
 import lombok.ToString;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.BiConsumer;
 
 /**
  * victor
+ * <p>
+ * The fields of the nodes are not final, since {@link AVLTransient} changes the nodes it owns in place.
+ * A tree is never changed once it is returned, but it must be passed to other threads through a safe publication:
+ * a volatile or final field, an atomic reference or a lock
  */
 @ToString
 public class AVLTree<A> {
@@ -20,6 +29,26 @@ public class AVLTree<A> {
         return new AVLLeaf<>();
     }
 
+    /**
+     * Number of keys in the tree, in constant time
+     */
+    public static <T> int size(AVLTree<T> tree) {
+        if (tree instanceof AVLTree.AVLLeaf) {
+            return 0;
+        }
+        return ((AVLNode<T>) tree).size;
+    }
+
+    /**
+     * Sum of the hashes of the entries, equal for the trees with the same entries whatever their shapes are
+     */
+    static <T> int contentHash(AVLTree<T> tree) {
+        if (tree instanceof AVLTree.AVLLeaf) {
+            return 0;
+        }
+        return ((AVLNode<T>) tree).contentHash;
+    }
+
     private static <T> int cachedHeight(AVLTree<T> tree) {
         if (tree instanceof AVLTree.AVLLeaf) {
             return 0;
@@ -27,46 +56,50 @@ public class AVLTree<A> {
         return ((AVLNode<T>) tree).hh;
     }
 
-    private static <T> int bFactor(AVLNode<T> tree) {
+    static <T> int bFactor(AVLNode<T> tree) {
         return cachedHeight(tree.right) - cachedHeight(tree.left);
     }
 
-    private static <T> int height(AVLTree<T> l, AVLTree<T> r) {
+    static <T> int height(AVLTree<T> l, AVLTree<T> r) {
         int hl = cachedHeight(l);
         int hr = cachedHeight(r);
         return Math.max(hl, hr) + 1;
     }
 
-    private static <T> AVLTree<T> create(T k, AVLTree<T> l, AVLTree<T> r) {
-        return new AVLNode<>(k, height(l, r), l, r);
+    private static <T> AVLTree<T> create(T k, Object v, AVLTree<T> l, AVLTree<T> r) {
+        return new AVLNode<>(k, v, height(l, r), l, r);
     }
 
     private static <T> AVLTree<T> rotateRight(AVLTree<T> node) {
         // match
         assert node instanceof AVLTree.AVLNode;
         T p = ((AVLNode<T>) node).key;
+        Object pv = ((AVLNode<T>) node).value;
         assert ((AVLNode<T>) node).left instanceof AVLTree.AVLNode;
         T q = ((AVLNode<T>) ((AVLNode<T>) node).left).key;
+        Object qv = ((AVLNode<T>) ((AVLNode<T>) node).left).value;
         AVLTree<T> a = ((AVLNode<T>) ((AVLNode<T>) node).left).left;
         AVLTree<T> b = ((AVLNode<T>) ((AVLNode<T>) node).left).right;
         AVLTree<T> c = ((AVLNode<T>) node).right;
         // where
-        AVLTree<T> newP = new AVLNode<>(p, height(b, c), b, c);
-        return create(q, a, newP);
+        AVLTree<T> newP = new AVLNode<>(p, pv, height(b, c), b, c);
+        return create(q, qv, a, newP);
     }
 
     private static <T> AVLTree<T> rotateLeft(AVLTree<T> node) {
         // match
         assert node instanceof AVLTree.AVLNode;
         T q = ((AVLNode<T>) node).key;
+        Object qv = ((AVLNode<T>) node).value;
         AVLTree<T> a = ((AVLNode<T>) node).left;
         assert ((AVLNode<T>) node).right instanceof AVLTree.AVLNode;
         T p = ((AVLNode<T>) ((AVLNode<T>) node).right).key;
+        Object pv = ((AVLNode<T>) ((AVLNode<T>) node).right).value;
         AVLTree<T> b = ((AVLNode<T>) ((AVLNode<T>) node).right).left;
         AVLTree<T> c = ((AVLNode<T>) ((AVLNode<T>) node).right).right;
         // where
-        AVLTree<T> newQ = new AVLNode<>(q, height(a, b), a, b);
-        return create(p, newQ, c);
+        AVLTree<T> newQ = new AVLNode<>(q, qv, height(a, b), a, b);
+        return create(p, pv, newQ, c);
     }
 
     public static <T> AVLTree<T> deepCopy(AVLTree<T> tree) {
@@ -75,10 +108,11 @@ public class AVLTree<A> {
         }
         AVLNode<T> node = (AVLNode<T>) tree;
         T k = node.key;
+        Object v = node.value;
         int h = node.hh;
         AVLTree<T> l = node.left;
         AVLTree<T> r = node.right;
-        return new AVLNode<>(k, h, deepCopy(l), deepCopy(r));
+        return new AVLNode<>(k, v, h, deepCopy(l), deepCopy(r));
     }
 
     public static <T> boolean isBalanced(AVLTree<T> tree) {
@@ -93,20 +127,21 @@ public class AVLTree<A> {
         if (tree instanceof AVLTree.AVLNode) {
             AVLNode<T> node = (AVLNode<T>) tree;
             T k = node.key;
+            Object v = node.value;
             int h = node.hh;
             AVLTree<T> l = node.left;
             AVLTree<T> r = node.right;
             if (bFactor(node) == 2) {
                 assert node.right instanceof AVLTree.AVLNode;
                 if (bFactor((AVLNode<T>) node.right) < 0) {
-                    return rotateLeft(new AVLNode<>(k, h, l, rotateRight(r)));
+                    return rotateLeft(new AVLNode<>(k, v, h, l, rotateRight(r)));
                 } else {
                     return rotateLeft(node);
                 }
             } else if (bFactor(node) == -2) {
                 assert node.left instanceof AVLTree.AVLNode;
                 if (bFactor((AVLNode<T>) node.left) > 0) {
-                    return rotateRight(new AVLNode<>(k, h, rotateLeft(l), r));
+                    return rotateRight(new AVLNode<>(k, v, h, rotateLeft(l), r));
                 } else {
                     return rotateRight(node);
                 }
@@ -115,18 +150,19 @@ public class AVLTree<A> {
         return tree;
     }
 
-    private static <T> Pair<T, AVLTree<T>> helper(AVLNode<T> node) {
+    private static <T> Pair<AVLNode<T>, AVLTree<T>> helper(AVLNode<T> node) {
         T m = node.key;
+        Object v = node.value;
         AVLTree<T> r = node.right;
         if (node.left instanceof AVLTree.AVLLeaf) {
-            return new Pair<>(m, r);
+            return new Pair<>(node, r);
         }
         assert node.left instanceof AVLTree.AVLNode;
         AVLNode<T> l = (AVLNode<T>) node.left;
-        Pair<T, AVLTree<T>> temp = helper(l);
-        T newK = temp.f;
+        Pair<AVLNode<T>, AVLTree<T>> temp = helper(l);
+        AVLNode<T> min = temp.f;
         AVLTree<T> newL = temp.s;
-        return new Pair<>(newK, balance(create(m, newL, r)));
+        return new Pair<>(min, balance(create(m, v, newL, r)));
     }
 
     private static <T> AVLTree<T> deleteRoot(AVLNode<T> node) {
@@ -140,13 +176,14 @@ public class AVLTree<A> {
         AVLNode<T> r = (AVLNode<T>) node.right;
         if (((AVLNode<T>) node.right).left instanceof AVLTree.AVLLeaf) {
             T y = ((AVLNode<T>) node.right).key;
+            Object yv = ((AVLNode<T>) node.right).value;
             AVLTree<T> newR = ((AVLNode<T>) node.right).right;
-            return create(y, l, newR);
+            return balance(create(y, yv, l, newR));
         }
-        Pair<T, AVLTree<T>> temp = helper(r);
-        T newK = temp.f;
+        Pair<AVLNode<T>, AVLTree<T>> temp = helper(r);
+        AVLNode<T> min = temp.f;
         AVLTree<T> newR = temp.s;
-        return balance(create(newK, l, newR));
+        return balance(create(min.key, min.value, l, newR));
     }
 
     public static <T> List<T> toList(AVLTree<T> tree) {
@@ -165,64 +202,293 @@ public class AVLTree<A> {
     }
 
     public static <T extends Comparable<T>> Optional<T> find(AVLTree<T> tree, T m) {
+        return find(tree, m, Comparator.naturalOrder());
+    }
+
+    public static <T> Optional<T> find(AVLTree<T> tree, T m, Comparator<? super T> comparator) {
+        return lookup(tree, m, comparator).map(node -> node.key);
+    }
+
+    public static <T extends Comparable<T>> AVLTree<T> insert(AVLTree<T> tree, T m) {
+        return insert(tree, m, Comparator.naturalOrder());
+    }
+
+    public static <T> AVLTree<T> insert(AVLTree<T> tree, T m, Comparator<? super T> comparator) {
         if (tree instanceof AVLLeaf) {
-            return Optional.empty();
+            return create(m, null, tree, tree);
         }
-        assert tree instanceof AVLNode;
+        assert tree instanceof AVLNode : tree.getClass();
         AVLNode<T> node = (AVLNode<T>) tree;
         T k = node.key;
+        int h = node.hh;
         AVLTree<T> l = node.left;
         AVLTree<T> r = node.right;
-        switch (m.compareTo(k)) {
+        switch (Integer.signum(comparator.compare(m, k))) {
             case EQ:
-                return Optional.of(k);
-            case LT:
-                return find(l, m);
-            default:
-                return find(r, m);
+                return k == m ? node : new AVLNode<>(m, node.value, h, l, r);
+            case LT: {
+                AVLTree<T> newL = insert(l, m, comparator);
+                return newL == l ? node : balance(create(k, node.value, newL, r));
+            }
+            default: {
+                AVLTree<T> newR = insert(r, m, comparator);
+                return newR == r ? node : balance(create(k, node.value, l, newR));
+            }
         }
     }
 
-    public static <T extends Comparable<T>> AVLTree<T> insert(AVLTree<T> tree, T m) {
+    public static <T extends Comparable<T>> AVLTree<T> delete(AVLTree<T> tree, T m) {
+        return delete(tree, m, Comparator.naturalOrder());
+    }
+
+    /**
+     * Returns the same instance if there is no such key in the tree
+     */
+    public static <T> AVLTree<T> delete(AVLTree<T> tree, T m, Comparator<? super T> comparator) {
         if (tree instanceof AVLLeaf) {
-            return new AVLNode<>(m, 0, new AVLLeaf<>(), new AVLLeaf<>());
+            return tree;
         }
-        assert tree instanceof AVLNode : tree.getClass();
+        assert tree instanceof AVLNode;
         AVLNode<T> node = (AVLNode<T>) tree;
         T k = node.key;
-        int h = node.hh;
         AVLTree<T> l = node.left;
         AVLTree<T> r = node.right;
-        switch (m.compareTo(k)) {
-            case EQ:
-                return new AVLNode<>(m, h, l, r);
-            case LT:
-                return balance(create(k, insert(l, m), r));
+        switch (Integer.signum(comparator.compare(m, k))) {
+            case GT: {
+                AVLTree<T> newR = delete(r, m, comparator);
+                return newR == r ? node : balance(create(k, node.value, l, newR));
+            }
+            case LT: {
+                AVLTree<T> newL = delete(l, m, comparator);
+                return newL == l ? node : balance(create(k, node.value, newL, r));
+            }
             default:
-                return balance(create(k, l, insert(r, m)));
+                return deleteRoot(node);
         }
     }
 
-    public static <T extends Comparable<T>> AVLTree<T> delete(AVLTree<T> tree, T m) {
+    /**
+     * Binds the value to the key, keeping the stored key if it is already present.
+     * Returns the same instance if the key is already bound to an equal value
+     */
+    static <T> AVLTree<T> put(AVLTree<T> tree, T m, Object value, Comparator<? super T> comparator) {
         if (tree instanceof AVLLeaf) {
-            return new AVLLeaf<>();
+            return create(m, value, tree, tree);
         }
         assert tree instanceof AVLNode;
         AVLNode<T> node = (AVLNode<T>) tree;
         T k = node.key;
+        int h = node.hh;
         AVLTree<T> l = node.left;
         AVLTree<T> r = node.right;
-        switch (m.compareTo(k)) {
-            case GT:
-                return balance(create(k, l, delete(r, m)));
+        switch (Integer.signum(comparator.compare(m, k))) {
+            case EQ:
+                return Objects.equals(node.value, value) ? node : new AVLNode<>(k, value, h, l, r);
+            case LT: {
+                AVLTree<T> newL = put(l, m, value, comparator);
+                return newL == l ? node : balance(create(k, node.value, newL, r));
+            }
+            default: {
+                AVLTree<T> newR = put(r, m, value, comparator);
+                return newR == r ? node : balance(create(k, node.value, l, newR));
+            }
+        }
+    }
+
+    static <T> Optional<AVLNode<T>> lookup(AVLTree<T> tree, T m, Comparator<? super T> comparator) {
+        if (tree instanceof AVLLeaf) {
+            return Optional.empty();
+        }
+        assert tree instanceof AVLNode;
+        AVLNode<T> node = (AVLNode<T>) tree;
+        switch (Integer.signum(comparator.compare(m, node.key))) {
+            case EQ:
+                return Optional.of(node);
             case LT:
-                return balance(create(k, delete(l, m), r));
+                return lookup(node.left, m, comparator);
             default:
-                return deleteRoot(node);
+                return lookup(node.right, m, comparator);
+        }
+    }
+
+    /**
+     * The greatest node with the key less than (or equal to, if inclusive) the given one
+     */
+    static <T> Optional<AVLNode<T>> floor(AVLTree<T> tree, T m, boolean inclusive, Comparator<? super T> comparator) {
+        if (tree instanceof AVLLeaf) {
+            return Optional.empty();
+        }
+        assert tree instanceof AVLNode;
+        AVLNode<T> node = (AVLNode<T>) tree;
+        int cmp = comparator.compare(m, node.key);
+        if (cmp < 0 || cmp == 0 && !inclusive) {
+            return floor(node.left, m, inclusive, comparator);
+        }
+        if (cmp == 0) {
+            return Optional.of(node);
+        }
+        Optional<AVLNode<T>> better = floor(node.right, m, inclusive, comparator);
+        return better.isPresent() ? better : Optional.of(node);
+    }
+
+    /**
+     * The least node with the key greater than (or equal to, if inclusive) the given one
+     */
+    static <T> Optional<AVLNode<T>> ceiling(AVLTree<T> tree, T m, boolean inclusive, Comparator<? super T> comparator) {
+        if (tree instanceof AVLLeaf) {
+            return Optional.empty();
+        }
+        assert tree instanceof AVLNode;
+        AVLNode<T> node = (AVLNode<T>) tree;
+        int cmp = comparator.compare(m, node.key);
+        if (cmp > 0 || cmp == 0 && !inclusive) {
+            return ceiling(node.right, m, inclusive, comparator);
+        }
+        if (cmp == 0) {
+            return Optional.of(node);
+        }
+        Optional<AVLNode<T>> better = ceiling(node.left, m, inclusive, comparator);
+        return better.isPresent() ? better : Optional.of(node);
+    }
+
+    static <T> Optional<AVLNode<T>> first(AVLTree<T> tree) {
+        if (tree instanceof AVLLeaf) {
+            return Optional.empty();
+        }
+        AVLNode<T> node = (AVLNode<T>) tree;
+        while (node.left instanceof AVLNode) {
+            node = (AVLNode<T>) node.left;
+        }
+        return Optional.of(node);
+    }
+
+    static <T> Optional<AVLNode<T>> last(AVLTree<T> tree) {
+        if (tree instanceof AVLLeaf) {
+            return Optional.empty();
+        }
+        AVLNode<T> node = (AVLNode<T>) tree;
+        while (node.right instanceof AVLNode) {
+            node = (AVLNode<T>) node.right;
+        }
+        return Optional.of(node);
+    }
+
+    public static <T extends Comparable<T>> List<Change<T>> diff(AVLTree<T> a, AVLTree<T> b) {
+        return diff(a, b, Comparator.naturalOrder());
+    }
+
+    /**
+     * Keys removed from the first tree and added to the second one, in ascending order.
+     * Only the sets of keys are compared, changed values are not reported
+     */
+    public static <T> List<Change<T>> diff(AVLTree<T> a, AVLTree<T> b, Comparator<? super T> comparator) {
+        List<Change<T>> list = new ArrayList<>();
+        diff(a, b, comparator, (x, y) -> {
+            if (x == null) {
+                list.add(new Change<>(y.key, true));
+            } else if (y == null) {
+                list.add(new Change<>(x.key, false));
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Visits the nodes whose keys are present in only one of the trees (the other argument is {@code null})
+     * or whose values differ, in ascending order of the keys. Subtrees shared by both trees are skipped
+     * without descending into them, so versions of one tree are compared in time proportional to the changes
+     */
+    static <T> void diff(AVLTree<T> a, AVLTree<T> b, Comparator<? super T> comparator, BiConsumer<AVLNode<T>, AVLNode<T>> consumer) {
+        Deque<Pair<AVLNode<T>, Boolean>> x = new ArrayDeque<>();
+        Deque<Pair<AVLNode<T>, Boolean>> y = new ArrayDeque<>();
+        push(x, a);
+        push(y, b);
+        while (!x.isEmpty() && !y.isEmpty()) {
+            Pair<AVLNode<T>, Boolean> p = x.peek();
+            Pair<AVLNode<T>, Boolean> q = y.peek();
+            if (p.f == q.f && p.s == q.s) {
+                x.pop();
+                y.pop();
+            } else if (!p.s && !q.s) {
+                // expand the higher subtree first, so that shared subtrees meet on the tops
+                int hp = p.f.hh;
+                int hq = q.f.hh;
+                if (hp >= hq) {
+                    expand(x);
+                }
+                if (hq >= hp) {
+                    expand(y);
+                }
+            } else if (!p.s) {
+                expand(x);
+            } else if (!q.s) {
+                expand(y);
+            } else {
+                int cmp = comparator.compare(p.f.key, q.f.key);
+                if (cmp < 0) {
+                    consumer.accept(x.pop().f, null);
+                } else if (cmp > 0) {
+                    consumer.accept(null, y.pop().f);
+                } else {
+                    x.pop();
+                    y.pop();
+                    if (!Objects.equals(p.f.value, q.f.value)) {
+                        consumer.accept(p.f, q.f);
+                    }
+                }
+            }
+        }
+        while (!x.isEmpty()) {
+            if (x.peek().s) {
+                consumer.accept(x.pop().f, null);
+            } else {
+                expand(x);
+            }
+        }
+        while (!y.isEmpty()) {
+            if (y.peek().s) {
+                consumer.accept(null, y.pop().f);
+            } else {
+                expand(y);
+            }
+        }
+    }
+
+    /**
+     * Pushes the subtree to be expanded later
+     */
+    private static <T> void push(Deque<Pair<AVLNode<T>, Boolean>> stack, AVLTree<T> tree) {
+        if (tree instanceof AVLNode) {
+            stack.push(new Pair<>((AVLNode<T>) tree, false));
+        }
+    }
+
+    /**
+     * Replaces the subtree on the top with its left subtree, its root node and its right subtree
+     */
+    private static <T> void expand(Deque<Pair<AVLNode<T>, Boolean>> stack) {
+        AVLNode<T> node = stack.pop().f;
+        push(stack, node.right);
+        stack.push(new Pair<>(node, true));
+        push(stack, node.left);
+    }
+
+    static <T> List<AVLNode<T>> toNodeList(AVLTree<T> tree) {
+        List<AVLNode<T>> list = new ArrayList<>();
+        collect(tree, list);
+        return list;
+    }
+
+    private static <T> void collect(AVLTree<T> tree, List<AVLNode<T>> list) {
+        if (tree instanceof AVLNode) {
+            AVLNode<T> node = (AVLNode<T>) tree;
+            collect(node.left, list);
+            list.add(node);
+            collect(node.right, list);
         }
     }
 
-    private static class AVLLeaf<A> extends AVLTree<A> {
+    static class AVLLeaf<A> extends AVLTree<A> {
         @Override
         public boolean equals(Object obj) {
             return obj instanceof AVLLeaf;
@@ -238,43 +504,125 @@ public class AVLTree<A> {
         }
     }
 
-    private static class AVLNode<A> extends AVLTree<A> {
-        private final A key;
-        private final int hh;
-        private final AVLTree<A> left;
-        private final AVLTree<A> right;
+    /**
+     * Fields are changed in place only by the {@link AVLTransient} owning the node, that is the live transient
+     * whose edit token equals {@link #edit}. Once the transient is frozen nobody owns the node anymore
+     */
+    static class AVLNode<A> extends AVLTree<A> {
+        A key;
+        /**
+         * Value bound to the key, {@code null} when the tree is used as a set
+         */
+        Object value;
+        int hh;
+        AVLTree<A> left;
+        AVLTree<A> right;
+        /**
+         * Number of nodes in the subtree
+         */
+        int size;
+        /**
+         * Hash of the whole subtree, computed from the hashes of the children
+         */
+        int hash;
+        /**
+         * Hash of the entries of the subtree which does not depend on its shape
+         */
+        int contentHash;
+        /**
+         * Edit token of the transient which has created the node, {@code null} if it is created persistent.
+         * Nodes keep the token after the transient is frozen, but no live transient has it anymore
+         */
+        final Object edit;
+
+        public AVLNode(A key, Object value, int hh, AVLTree<A> left, AVLTree<A> right) {
+            this(key, value, hh, left, right, null);
+        }
 
-        public AVLNode(A key, int hh, AVLTree<A> left, AVLTree<A> right) {
+        AVLNode(A key, Object value, int hh, AVLTree<A> left, AVLTree<A> right, Object edit) {
             assert key != null;
             assert hh >= 0;
             assert left != null;
             assert right != null;
             this.key = key;
+            this.value = value;
             this.hh = hh;
             this.left = left;
             this.right = right;
+            this.edit = edit;
+            recompute();
+        }
+
+        /**
+         * Recomputes the size and the hash after the node has been changed, the ones of the children must be up to date
+         */
+        void recompute() {
+            this.size = AVLTree.size(left) + 1 + AVLTree.size(right);
+            this.contentHash = AVLTree.contentHash(left) + (key.hashCode() ^ Objects.hashCode(value)) + AVLTree.contentHash(right);
+            final int PRIME = 59;
+            int result = 1;
+            result = result * PRIME + key.hashCode();
+            result = result * PRIME + Objects.hashCode(value);
+            result = result * PRIME + hh;
+            result = result * PRIME + left.hashCode();
+            result = result * PRIME + right.hashCode();
+            this.hash = result;
         }
 
         public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
             if (o instanceof AVLNode) {
                 AVLNode another = (AVLNode) o;
-                return this.key.equals(another.key) && this.hh == another.hh && this.left.equals(another.left) && this.right.equals(another.right);
+                return this.hash == another.hash && this.hh == another.hh && this.key.equals(another.key) && Objects.equals(this.value, another.value) && this.left.equals(another.left) && this.right.equals(another.right);
             }
             return false;
         }
 
         public int hashCode() {
-            final int PRIME = 59;
-            int result = 1;
-            result = result * PRIME + key.hashCode();
-            result = result * PRIME + hh;
-            result = result * PRIME + left.hashCode();
-            result = result * PRIME + right.hashCode();
-            return result;
+            return hash;
+        }
+
+        public String toString() {
+            return "Pointer(key=" + this.key + ", value=" + this.value + ", hh=" + this.hh + ", left=" + this.left + ", right=" + this.right + ")";
+        }
+    }
+
+    public static class Change<T> {
+        private final T key;
+        private final boolean added;
+
+        Change(T key, boolean added) {
+            this.key = key;
+            this.added = added;
+        }
+
+        public T key() {
+            return key;
+        }
+
+        /**
+         * Whether the key is added to the second tree, otherwise it is removed from the first one
+         */
+        public boolean added() {
+            return added;
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof Change) {
+                Change another = (Change) o;
+                return this.key.equals(another.key) && this.added == another.added;
+            }
+            return false;
+        }
+
+        public int hashCode() {
+            return key.hashCode() * 59 + (added ? 79 : 97);
         }
 
         public String toString() {
-            return "Pointer(key=" + this.key + ", hh=" + this.hh + ", left=" + this.left + ", right=" + this.right + ")";
+            return "Change(key=" + this.key + ", added=" + this.added + ")";
         }
     }
 
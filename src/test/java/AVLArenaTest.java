@@ -0,0 +1,87 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * @author Victor Khovanskiy
+ */
+public class AVLArenaTest {
+    private static final Random RANDOM = new Random(55555);
+
+    @Test
+    public void test() {
+        AVLArena arena = new AVLArena();
+        TreeSet<Long> values = new TreeSet<>();
+        int current = AVLArena.EMPTY;
+        for (int i = 0; i < 10000; ++i) {
+            long argument = RANDOM.nextInt(1000);
+            int previous = current;
+            long[] previousArray = arena.toArray(previous);
+            switch (RANDOM.nextInt(3)) {
+                case 0:
+                    Assert.assertEquals("Tree must contains certain element", values.contains(argument), arena.contains(current, argument));
+                    break;
+                case 1:
+                    current = arena.insert(current, argument);
+                    values.add(argument);
+                    break;
+                default:
+                    current = arena.delete(current, argument);
+                    values.remove(argument);
+                    break;
+            }
+            Assert.assertTrue("Tree must be balanced", arena.isBalanced(current));
+            Assert.assertArrayEquals("Operation must not change data in the object", previousArray, arena.toArray(previous));
+            Assert.assertArrayEquals(toArray(values), arena.toArray(current));
+        }
+    }
+
+    @Test
+    public void compact() {
+        AVLArena arena = new AVLArena();
+        List<Integer> versions = new ArrayList<>();
+        int current = AVLArena.EMPTY;
+        for (int i = 0; i < 1000; ++i) {
+            long argument = RANDOM.nextInt(1000);
+            current = RANDOM.nextInt(3) == 0 ? arena.delete(current, argument) : arena.insert(current, argument);
+            versions.add(current);
+        }
+        int[] live = {versions.get(100), versions.get(500), current};
+        List<long[]> expected = new ArrayList<>();
+        for (int tree : live) {
+            expected.add(arena.toArray(tree));
+        }
+        int before = arena.size();
+        int[] moved = arena.compact(live);
+        Assert.assertTrue("Unreachable nodes must be dropped", arena.size() < before);
+        for (int i = 0; i < live.length; ++i) {
+            Assert.assertTrue("Tree must be balanced", arena.isBalanced(moved[i]));
+            Assert.assertArrayEquals("Compaction must not change data", expected.get(i), arena.toArray(moved[i]));
+        }
+        Assert.assertTrue("Shared nodes must stay shared",
+                arena.size() < expected.get(0).length + expected.get(1).length + expected.get(2).length);
+    }
+
+    @Test
+    public void compactUnknownVersion() {
+        AVLArena arena = new AVLArena();
+        int tree = arena.insert(arena.insert(AVLArena.EMPTY, 1), 2);
+        try {
+            arena.compact(tree, 12345);
+            Assert.fail("Unknown version must be rejected");
+        } catch (IllegalArgumentException ignored) {
+        }
+        Assert.assertTrue("Arena must not be changed", arena.contains(tree, 1));
+        Assert.assertArrayEquals(new long[]{1, 2}, arena.toArray(tree));
+    }
+
+    private static long[] toArray(Collection<Long> values) {
+        long[] result = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            result[i++] = value;
+        }
+        return result;
+    }
+}
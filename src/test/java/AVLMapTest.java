@@ -0,0 +1,126 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * @author Victor Khovanskiy
+ */
+public class AVLMapTest {
+    private static final Random RANDOM = new Random(55555);
+
+    @Test
+    public void unchangedValueKeepsInstance() {
+        String value = "42";
+        AVLMap<Integer, String> map1 = AVLMap.<Integer, String>create().put(42, value);
+        Assert.assertSame("Put of the same value must return the same map", map1, map1.put(42, value));
+        Assert.assertSame("Put of an equal value must return the same map", map1, map1.put(42, new String(value)));
+        // 1000 is out of the Integer cache, so every boxing gives another instance
+        AVLMap<Integer, Integer> boxed = AVLMap.<Integer, Integer>create().put(1, Integer.valueOf(1000));
+        Assert.assertSame("Put of an equal value must return the same map", boxed, boxed.put(1, Integer.valueOf(1000)));
+        Assert.assertSame("Put of an equal value must keep the tree", boxed.tree(), boxed.asTransient().put(1, Integer.valueOf(1000)).persistent().tree());
+        Assert.assertSame("Remove of absent key must return the same map", map1, map1.remove(43));
+        Assert.assertSame("Merge into the same value must return the same map", map1, map1.merge(42, "0", (a, b) -> a));
+        Assert.assertSame("Compute to the same value must return the same map", map1, map1.compute(42, (k, v) -> v));
+        Assert.assertSame("Compute of absent key to null must return the same map", map1, map1.compute(43, (k, v) -> null));
+        AVLMap<Integer, String> map2 = map1.put(42, "43");
+        Assert.assertNotSame(map1, map2);
+        Assert.assertEquals("Operation must not change data in the object", Optional.of("42"), map1.get(42));
+        Assert.assertEquals(Optional.of("43"), map2.get(42));
+    }
+
+    @Test
+    public void navigation() {
+        AVLMap<Integer, String> map = AVLMap.create(Comparator.<Integer>reverseOrder());
+        for (int i = 0; i < 100; i += 10) {
+            map = map.put(i, String.valueOf(i));
+        }
+        Assert.assertEquals(Optional.of(90), map.firstKey());
+        Assert.assertEquals(Optional.of(0), map.lastKey());
+        Assert.assertEquals(Optional.of(50), map.floorKey(50));
+        Assert.assertEquals(Optional.of(60), map.lowerKey(50));
+        Assert.assertEquals(Optional.of(50), map.ceilingKey(55));
+        Assert.assertEquals(Optional.of(60), map.higherKey(65));
+        Assert.assertEquals(Optional.empty(), map.higherKey(0));
+        Assert.assertEquals(Optional.empty(), map.floorKey(95));
+    }
+
+    @Test
+    public void equalsIgnoresShape() {
+        AVLMap<Integer, Integer> map1 = AVLMap.<Integer, Integer>create().put(1, 1).put(2, 2);
+        AVLMap<Integer, Integer> map2 = AVLMap.<Integer, Integer>create().put(2, 2).put(1, 1);
+        Assert.assertEquals("Maps with the same entries must be equal", map1, map2);
+        Assert.assertEquals(map1.hashCode(), map2.hashCode());
+        Assert.assertNotEquals(map1, map2.put(1, 3));
+        AVLMap<Integer, Integer> reversed = AVLMap.<Integer, Integer>create(Comparator.reverseOrder()).put(1, 1).put(2, 2);
+        Assert.assertNotEquals("Maps with different comparators must not be equal", map1, reversed);
+        Assert.assertNotEquals(reversed, map1);
+        Assert.assertTrue("Key diff must not report changed values", AVLTree.diff(map1.tree(), map1.put(1, 3).tree()).isEmpty());
+    }
+
+    @Test
+    public void diff() {
+        AVLMap<Integer, Integer> current = AVLMap.create();
+        for (int i = 0; i < 1000; ++i) {
+            AVLMap<Integer, Integer> previous = current;
+            for (int j = RANDOM.nextInt(5); j >= 0; --j) {
+                int key = RANDOM.nextInt(1000);
+                current = RANDOM.nextBoolean() ? current.put(key, RANDOM.nextInt(3)) : current.remove(key);
+            }
+            List<AVLMap.Change<Integer, Integer>> expected = new ArrayList<>();
+            TreeSet<Integer> keys = new TreeSet<>(previous.keys());
+            keys.addAll(current.keys());
+            for (int key : keys) {
+                if (!previous.get(key).equals(current.get(key))) {
+                    expected.add(new AVLMap.Change<>(key, previous.get(key), current.get(key)));
+                }
+            }
+            Assert.assertEquals(expected, AVLMap.diff(previous, current));
+            Assert.assertEquals(expected.isEmpty(), previous.equals(current));
+            if (expected.isEmpty()) {
+                Assert.assertEquals(previous.hashCode(), current.hashCode());
+            }
+            Assert.assertEquals(current, current.asTransient().persistent());
+            Assert.assertEquals(current.hashCode(), current.asTransient().persistent().hashCode());
+        }
+    }
+
+    @Test
+    public void test() {
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        AVLMap<Integer, Integer> current = AVLMap.create();
+        for (int i = 0; i < 10000; ++i) {
+            int key = RANDOM.nextInt(1000);
+            int value = RANDOM.nextInt(10);
+            AVLMap<Integer, Integer> previous = current;
+            List<Map.Entry<Integer, Integer>> previousEntries = previous.entries();
+            switch (RANDOM.nextInt(4)) {
+                case 0:
+                    current = current.put(key, value);
+                    expected.put(key, value);
+                    break;
+                case 1:
+                    current = current.remove(key);
+                    expected.remove(key);
+                    break;
+                case 2:
+                    current = current.merge(key, value, (a, b) -> a + b > 15 ? null : Integer.valueOf(a + b));
+                    expected.merge(key, value, (a, b) -> a + b > 15 ? null : Integer.valueOf(a + b));
+                    break;
+                default:
+                    current = current.compute(key, (k, v) -> v == null ? Integer.valueOf(value) : v % 2 == 0 ? null : Integer.valueOf(v + 1));
+                    expected.compute(key, (k, v) -> v == null ? Integer.valueOf(value) : v % 2 == 0 ? null : Integer.valueOf(v + 1));
+                    break;
+            }
+            Assert.assertTrue("Tree must be balanced", AVLTree.isBalanced(current.tree()));
+            Assert.assertEquals("Operation must not change data in the object", previousEntries, previous.entries());
+            Assert.assertEquals(new ArrayList<>(expected.entrySet()), current.entries());
+            Assert.assertEquals(expected.size(), current.size());
+            Assert.assertEquals(Optional.ofNullable(expected.get(key)), current.get(key));
+            Assert.assertEquals(Optional.ofNullable(expected.floorKey(key)), current.floorKey(key));
+            Assert.assertEquals(Optional.ofNullable(expected.lowerKey(key)), current.lowerKey(key));
+            Assert.assertEquals(Optional.ofNullable(expected.ceilingKey(key)), current.ceilingKey(key));
+            Assert.assertEquals(Optional.ofNullable(expected.higherKey(key)), current.higherKey(key));
+        }
+    }
+}
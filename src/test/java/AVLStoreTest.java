@@ -0,0 +1,246 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Victor Khovanskiy
+ */
+public class AVLStoreTest {
+    private static final int OPERATIONS = 20000;
+
+    @Test
+    public void history() {
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 2);
+        Assert.assertEquals(1, store.put(1, 1));
+        Assert.assertEquals(2, store.put(2, 2));
+        Assert.assertEquals("Unchanged map must not produce a version", 2, store.remove(3));
+        Assert.assertEquals(3, store.remove(1));
+        Assert.assertFalse("Old versions must be dropped", store.snapshot(1).isPresent());
+        Assert.assertEquals(Arrays.asList(1, 2), store.snapshot(2).get().keys());
+        Assert.assertEquals(Collections.singletonList(2), store.snapshot(3).get().keys());
+    }
+
+    @Test
+    public void failure() {
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 1);
+        try {
+            store.update(map -> {
+                map.put(1, 1);
+                throw new IllegalArgumentException();
+            });
+            Assert.fail("Exception must be rethrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+        Assert.assertTrue("Failed operation must not be published", store.snapshot().isEmpty());
+        Assert.assertEquals(0, store.current().number());
+    }
+
+    @Test
+    public void compareAndSet() {
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 1);
+        AVLMap<Integer, Integer> base = store.snapshot();
+        Assert.assertTrue(store.compareAndSet(base, base.put(1, 1)));
+        Assert.assertFalse("Outdated map must not be published", store.compareAndSet(base, base.put(2, 2)));
+        Assert.assertEquals(Collections.singletonList(1), store.snapshot().keys());
+    }
+
+    /**
+     * Operations queued while the combiner is busy must be published together
+     */
+    @Test
+    public void combined() throws Exception {
+        int writers = 4;
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        CountDownLatch release = holdCombiner(store, executor);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < writers; ++i) {
+            int key = i;
+            futures.add(executor.submit(() -> store.put(key, key)));
+        }
+        awaitQueued(store, writers);
+        release.countDown();
+        Set<Long> versions = new HashSet<>();
+        for (Future<Long> future : futures) {
+            versions.add(future.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), store.snapshot().keys());
+        Assert.assertEquals("Writes must be combined into one version", 1, versions.size());
+        Assert.assertEquals(1, store.current().number());
+    }
+
+    /**
+     * A checked exception thrown sneakily must fail only its own operation
+     */
+    @Test
+    public void sneakyFailure() throws Exception {
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        CountDownLatch release = holdCombiner(store, executor);
+        Future<Long> failed = executor.submit(() -> store.update(map -> AVLStoreTest.<RuntimeException>sneakyThrow(new IOException("from B"))));
+        Future<Long> succeeded = executor.submit(() -> store.put(1, 1));
+        awaitQueued(store, 2);
+        release.countDown();
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            Assert.fail("Exception must be rethrown");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(1, (long) succeeded.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertEquals(Optional.of(1), store.snapshot().get(1));
+    }
+
+    /**
+     * An operation can neither freeze the shared transient nor use it after it returns
+     */
+    @Test
+    public void operationGetsView() throws Exception {
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch release = holdCombiner(store, executor);
+        Future<Long> frozen = executor.submit(() -> store.update(AVLMap.Transient::persistent));
+        Future<Long> first = executor.submit(() -> store.put(1, 1));
+        Future<Long> second = executor.submit(() -> store.put(2, 2));
+        awaitQueued(store, 3);
+        release.countDown();
+        try {
+            frozen.get(10, TimeUnit.SECONDS);
+            Assert.fail("Freezing the transient must fail the operation");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(1, (long) first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, (long) second.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertEquals(Arrays.asList(1, 2), store.snapshot().keys());
+
+        List<AVLMap.Transient<Integer, Integer>> leaked = new ArrayList<>();
+        store.update(leaked::add);
+        try {
+            leaked.get(0).put(3, 3);
+            Assert.fail("View must not be used after its operation");
+        } catch (IllegalStateException ignored) {
+        }
+        Assert.assertEquals(Arrays.asList(1, 2), store.snapshot().keys());
+    }
+
+    /**
+     * Waits until the given number of operations is queued behind the held combiner
+     */
+    private static void awaitQueued(AVLStore<Integer, Integer> store, int count) {
+        while (store.queued() < count) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Makes the combiner wait until the returned latch is released
+     */
+    private static CountDownLatch holdCombiner(AVLStore<Integer, Integer> store, ExecutorService executor) throws InterruptedException {
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> store.update(map -> {
+            held.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        held.await();
+        return release;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> void sneakyThrow(Throwable e) throws E {
+        throw (E) e;
+    }
+
+    /**
+     * Every writer counts its own key up, every reader checks that versions only grow
+     */
+    @Test
+    public void stress() throws Exception {
+        int writers = 8;
+        int readers = 4;
+        AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 16);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        CountDownLatch finished = new CountDownLatch(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < writers; ++i) {
+            int key = i;
+            futures.add(executor.submit(() -> {
+                try {
+                    long previous = -1;
+                    for (int j = 0; j < OPERATIONS; ++j) {
+                        long version = store.update(map -> map.put(key, map.get(key).orElse(0) + 1));
+                        Assert.assertTrue("Versions must grow", version > previous);
+                        previous = version;
+                        Assert.assertTrue("Change must be visible in its version", store.snapshot(version)
+                                .map(map -> map.get(key).orElse(0) > 0).orElse(true));
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }));
+        }
+        for (int i = 0; i < readers; ++i) {
+            futures.add(executor.submit(() -> {
+                AVLStore.Version<Integer, Integer> previous = store.current();
+                while (finished.getCount() > 0) {
+                    AVLStore.Version<Integer, Integer> version = store.current();
+                    Assert.assertTrue("Versions must grow", version.number() >= previous.number());
+                    for (Map.Entry<Integer, Integer> entry : previous.map().entries()) {
+                        Assert.assertTrue("Counters must grow", version.map().get(entry.getKey()).get() >= entry.getValue());
+                    }
+                    previous = version;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        AVLMap<Integer, Integer> result = store.snapshot();
+        for (int i = 0; i < writers; ++i) {
+            Assert.assertEquals(Optional.of(OPERATIONS), result.get(i));
+        }
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        for (int threads : Arrays.asList(1, 2, 4, 8, 16)) {
+            AVLStore<Integer, Integer> store = new AVLStore<>(AVLMap.<Integer, Integer>create(), 1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            AtomicLong seed = new AtomicLong();
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < threads; ++i) {
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed.incrementAndGet());
+                    for (int j = 0; j < OPERATIONS; ++j) {
+                        int key = random.nextInt(100000);
+                        if (random.nextBoolean()) {
+                            store.put(key, j);
+                        } else {
+                            store.remove(key);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long duration = System.currentTimeMillis() - start;
+            executor.shutdown();
+            System.out.println(String.format("%d | %d | %d | %d", threads, threads * OPERATIONS, store.current().number(), duration));
+        }
+    }
+}
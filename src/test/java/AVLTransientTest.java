@@ -0,0 +1,113 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * @author Victor Khovanskiy
+ */
+public class AVLTransientTest {
+    private static final Random RANDOM = new Random(55555);
+
+    @Test(expected = IllegalStateException.class)
+    public void usageAfterPersistent() {
+        AVLTransient<Integer> tree = AVLTransient.of(AVLTree.<Integer>create());
+        tree.insert(42).persistent();
+        tree.insert(43);
+    }
+
+    @Test
+    public void ownedNodesAreChangedInPlace() {
+        AVLTree<Integer> tree = AVLTree.create();
+        for (int i = 1; i < 1024; ++i) {
+            tree = AVLTree.insert(tree, i);
+        }
+        AVLTransient<Integer> builder = AVLTransient.of(tree);
+        builder.put(500, "a");
+        AVLTree<Integer> root = builder.root();
+        Assert.assertNotSame("Shared nodes must be copied", tree, root);
+        Set<AVLTree.AVLNode<Integer>> owned = nodes(root);
+        builder.put(500, "b");
+        Assert.assertSame("Edit of an owned path must keep the root", root, builder.root());
+        Assert.assertEquals("Edit of an owned path must not allocate nodes", owned, nodes(root));
+        Assert.assertEquals(Optional.of("b"), builder.lookup(500).map(node -> node.value));
+
+        builder.insert(2000);
+        root = builder.root();
+        for (int i = 2001; i < 2010; ++i) {
+            Set<AVLTree.AVLNode<Integer>> before = nodes(root);
+            builder.insert(i);
+            Assert.assertSame("Insert into an owned path must keep the root", root, builder.root());
+            Set<AVLTree.AVLNode<Integer>> allocated = nodes(root);
+            allocated.removeAll(before);
+            Assert.assertEquals("Insert into an owned path must allocate only the new node", 1, allocated.size());
+        }
+        Assert.assertTrue("Tree must be balanced", AVLTree.isBalanced(builder.persistent()));
+        Assert.assertEquals("Operation must not change data in the object", 1023, AVLTree.size(tree));
+        Assert.assertEquals("Operation must not change data in the object",
+                Optional.empty(), AVLTree.lookup(tree, 500, Comparator.naturalOrder()).map(node -> node.value));
+    }
+
+    @Test
+    public void test() {
+        TreeSet<Integer> values = new TreeSet<>();
+        AVLTree<Integer> current = AVLTree.create();
+        for (int batch = 0; batch < 100; ++batch) {
+            AVLTree<Integer> previousCopy = AVLTree.deepCopy(current);
+            AVLTree<Integer> previous = current;
+            AVLTree<Integer> expected = current;
+            AVLTransient<Integer> builder = AVLTransient.of(current);
+            for (int i = 0; i < 200; ++i) {
+                int argument = RANDOM.nextInt(1000);
+                if (RANDOM.nextInt(3) == 0) {
+                    builder.delete(argument);
+                    expected = AVLTree.delete(expected, argument);
+                    values.remove(argument);
+                } else {
+                    builder.insert(argument);
+                    expected = AVLTree.insert(expected, argument);
+                    values.add(argument);
+                }
+                Assert.assertEquals(Optional.of(argument).filter(values::contains), builder.find(argument));
+            }
+            current = builder.persistent();
+            Assert.assertTrue("Tree must be balanced", AVLTree.isBalanced(current));
+            Assert.assertEquals("Operation must not change data in the object", previousCopy, previous);
+            Assert.assertEquals(new ArrayList<>(values), AVLTree.toList(current));
+            Assert.assertEquals(AVLTree.toList(expected), AVLTree.toList(current));
+        }
+    }
+
+    @Test
+    public void map() {
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        AVLMap<Integer, Integer> current = AVLMap.create();
+        for (int batch = 0; batch < 100; ++batch) {
+            AVLMap<Integer, Integer> previous = current;
+            List<Map.Entry<Integer, Integer>> previousEntries = previous.entries();
+            AVLMap.Transient<Integer, Integer> builder = current.asTransient();
+            for (int i = 0; i < 200; ++i) {
+                int key = RANDOM.nextInt(1000);
+                if (RANDOM.nextInt(3) == 0) {
+                    builder.remove(key);
+                    expected.remove(key);
+                } else {
+                    int value = RANDOM.nextInt(10);
+                    builder.put(key, value);
+                    expected.put(key, value);
+                }
+                Assert.assertEquals(Optional.ofNullable(expected.get(key)), builder.get(key));
+            }
+            current = builder.persistent();
+            Assert.assertEquals("Operation must not change data in the object", previousEntries, previous.entries());
+            Assert.assertEquals(new ArrayList<>(expected.entrySet()), current.entries());
+            Assert.assertEquals(expected.size(), current.size());
+        }
+    }
+
+    private static <T> Set<AVLTree.AVLNode<T>> nodes(AVLTree<T> tree) {
+        Set<AVLTree.AVLNode<T>> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(AVLTree.toNodeList(tree));
+        return set;
+    }
+}
@@ -62,6 +62,48 @@ public class MainTest {
         }
     }
 
+    @Test
+    public void hashAndDiff() {
+        Random random = new Random(55555);
+        TreeSet<Integer> values = new TreeSet<>();
+        AVLTree<Integer> current = AVLTree.create();
+        for (int i = 0; i < 1000; ++i) {
+            TreeSet<Integer> previousValues = new TreeSet<>(values);
+            AVLTree<Integer> previous = current;
+            AVLTransient<Integer> builder = AVLTransient.of(current);
+            for (int j = random.nextInt(5); j >= 0; --j) {
+                int argument = random.nextInt(1000);
+                if (random.nextBoolean()) {
+                    builder.insert(argument);
+                    values.add(argument);
+                } else {
+                    builder.delete(argument);
+                    values.remove(argument);
+                }
+            }
+            current = builder.persistent();
+            AVLTree<Integer> currentCopy = AVLTree.deepCopy(current);
+            Assert.assertEquals("Cached hash must match the hash of the copy", currentCopy.hashCode(), current.hashCode());
+            Assert.assertEquals(currentCopy, current);
+            List<AVLTree.Change<Integer>> expected = new ArrayList<>();
+            for (int value : new TreeSet<Integer>(union(values, previousValues))) {
+                if (!values.contains(value)) {
+                    expected.add(new AVLTree.Change<>(value, false));
+                } else if (!previousValues.contains(value)) {
+                    expected.add(new AVLTree.Change<>(value, true));
+                }
+            }
+            Assert.assertEquals(expected, AVLTree.diff(previous, current));
+            Assert.assertEquals(expected, AVLTree.diff(AVLTree.deepCopy(previous), currentCopy));
+        }
+    }
+
+    private static <T> Set<T> union(Set<T> a, Set<T> b) {
+        Set<T> result = new HashSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
     public <T> T random(Set<T> set) {
         List<T> list = new ArrayList<>(set);
         return list.get(RANDOM.nextInt(list.size()));